@@ -50,9 +50,24 @@ TODO: Complete wrapper function for memoiseCastle
 TODO: Determine the optimal order in which to memoise castles
 */
 
+import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 
 public class fivehundredtwo {
     private static Castle globalCastle = new Castle(4, 13);
@@ -71,10 +86,44 @@ public class fivehundredtwo {
     // For a given width and height, how do the solutions break down over the number of blocks used?
     private static int[][][] blockNumberResults = new int[globalCastle.getWidth() + 1][globalCastle.getHeight() + 1]
             [globalCastle.getWidth()*globalCastle.getHeight()];
+    // Receives sampled castles while enumerating, if -Dcastle.export is set (see CastleExporter)
+    private static CastleExporter exporter;
 
-    public static void main(String[] args) {
-        prepCachedMovesRec();
-        iterateCastles(globalCastle.getWidth(), globalCastle.getHeight());
+    /**
+     * Usage:
+     *   (no arguments)                 iterate over all castle sizes up to globalCastle's dimensions
+     *   --workers n w h                count a w by h castle, allowing the planner to use n worker JVMs
+     *                                  (add -Dcastle.engine=DISTRIBUTED to insist on them; see EnginePlanner)
+     *   --worker spoolDirectory id     run as a worker for a coordinator (launched by WorkCoordinator)
+     *   --serve port [cacheSize]       answer F(w, h [, modulus]) queries on a local socket (see CastleServer)
+     *
+     * When iterating, -Dcastle.export=directory exports castleResults, and optionally sampled castles and
+     * blockNumberResults (see CastleExporter).
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length == 3 && args[0].equals("--worker")){
+            WorkCoordinator.work(Paths.get(args[1]), Integer.parseInt(args[2]));
+        } else if(args.length == 4 && args[0].equals("--workers")){
+            EnginePlanner.setWorkers(Integer.parseInt(args[1]));
+            calculateCastle(Integer.parseInt(args[2]), Integer.parseInt(args[3])).display();
+            System.out.println();
+        } else if((args.length == 2 || args.length == 3) && args[0].equals("--serve")){
+            int cacheSize = args.length == 3 ? Integer.parseInt(args[2]) : CastleServer.DEFAULT_CACHE_SIZE;
+            new CastleServer(cacheSize).serve(Integer.parseInt(args[1]));
+        } else {
+            prepCachedMovesRec();
+            exporter = CastleExporter.fromSystemProperties();
+            if(exporter == null) {
+                iterateCastles(globalCastle.getWidth(), globalCastle.getHeight());
+            } else {
+                // only enumeration visits individual castles
+                EnginePlanner.setEnumerationRequired(exporter.needsEnumeration());
+                try (CastleExporter e = exporter) {
+                    iterateCastles(globalCastle.getWidth(), globalCastle.getHeight());
+                    e.writeTables(castleResults, blockNumberResults);
+                }
+            }
+        }
     }
 
     /**
@@ -105,24 +154,86 @@ public class fivehundredtwo {
 
         // Count castles from 1 to widthBound, 1 to heightBound
         for(int i = 1; i <= widthBound; i++){
-            System.out.print("    " + i + " | ");
+            StringBuilder row = new StringBuilder("    " + i + " | ");
             for(int j = 1; j <= heightBound; j++){
-                if(j == 1){
-                    castleResults[i][j] = new Result(0, 1);
-                } else if(i == 1){ // special case where we can predetermine results
-                    castleResults[i][j] = new Result((j + 1) % 2, j % 2);
-                } else {
-                    globalCastle = new Castle(i,j);
-                    castleResults[i][j] = enumerateCastleRec(0);
-                }
-                castleResults[i][j].display();
+                castleResults[i][j] = calculateCastle(i, j);
+                row.append(castleResults[i][j]);
                 if(j < heightBound)
-                    System.out.print("; ");
+                    row.append("; ");
             }
-            System.out.println();
+            System.out.println(row);
         }
     }
 
+    /**
+     * Count the castles of a single size with whichever engine EnginePlanner expects to be fastest.
+     *
+     * @precondition w > 0
+     * @precondition h > 0
+     */
+    static Result calculateCastle(int w, int h){
+        switch(EnginePlanner.plan(w, h)){
+            case CLOSED_FORM:
+                return predetermineCastle(w, h);
+            case INCREMENTAL:
+                return SubCastleTable.calculate(w, h);
+            case DISTRIBUTED:
+                return EnginePlanner.distribute(w, h);
+            default:
+                return enumerateCastle(w, h);
+        }
+    }
+
+    /**
+     * Castles one unit wide or one unit tall can be counted by formula.
+     */
+    static boolean isPredetermined(int w, int h){
+        return w == 1 || h == 1;
+    }
+
+    /**
+     * A castle one unit wide is a single tower of h blocks; one unit tall, a lone base block.
+     *
+     * @precondition isPredetermined(w, h)
+     */
+    static Result predetermineCastle(int w, int h){
+        return new Result((h + 1) % 2, h % 2);
+    }
+
+    /**
+     * Count the castles of a single size by depth-first enumeration.
+     *
+     * @precondition w > 1
+     * @precondition h > 1
+     */
+    static Result enumerateCastle(int w, int h){
+        globalCastle = new Castle(w, h);
+        // moves cached for a wider castle are a superset of the ones needed here
+        if(cachedMovesRec.size() <= w)
+            prepCachedMovesRec();
+        return enumerateCastleRec(0);
+    }
+
+    /**
+     * Time a depth-first enumeration without recording block numbers or exporting castles.
+     *
+     * @return the elapsed nanoseconds
+     */
+    static long timeEnumeration(int w, int h){
+        CastleExporter savedExporter = exporter;
+        int[][][] savedBlockNumbers = blockNumberResults;
+        exporter = null;
+        blockNumberResults = new int[0][0][0];
+
+        long start = System.nanoTime();
+        enumerateCastle(w, h);
+        long elapsed = System.nanoTime() - start;
+
+        exporter = savedExporter;
+        blockNumberResults = savedBlockNumbers;
+        return elapsed;
+    }
+
     /**
      * Recursively enumerates castles on globalCastle.
      *
@@ -133,15 +244,36 @@ public class fivehundredtwo {
      * @return sum a Result containing the number of even- and odd-block-numbered castles matching the given criteria
      */
     private static Result enumerateCastleRec(int spaceIndex){
+        return enumerateCastleRec(spaceIndex, -1, null, null);
+    }
+
+    /**
+     * enumerateCastleRec, optionally cut off depth steps below the starting node.
+     *
+     * @param depth how many more steps (block placements and row advances) to take before handing the current node
+     *              to cutoff instead of exploring it; negative for no cutoff
+     * @param path if not null, records the steps taken to reach the current node
+     * @param cutoff receives the spaceIndex of each node that is cut off
+     */
+    private static Result enumerateCastleRec(int spaceIndex, int depth, WorkUnit path, IntConsumer cutoff){
         Result sum = new Result();
 
+        // Whoever resumes the node counts it
+        if(depth == 0){
+            cutoff.accept(spaceIndex);
+            return sum;
+        }
+
         /* Normal code:
         if(globalCastle.isEvenSolution())
             sum.incrementEven();
          */
         if(globalCastle.areBlocksInLastRow()){
             // Mark how solutions are distributed across number of blocks used
-            blockNumberResults[globalCastle.getWidth()][globalCastle.getHeight()][globalCastle.getLastID()]++;
+            if(tracksBlockNumbers())
+                blockNumberResults[globalCastle.getWidth()][globalCastle.getHeight()][globalCastle.getLastID()]++;
+            if(exporter != null)
+                exporter.offer(globalCastle);
             if(globalCastle.lastIDEven())
                 sum.incrementEven();
             else
@@ -161,35 +293,88 @@ public class fivehundredtwo {
                                 // increment by current index; cachedMovesRec doesn't account for offset from current block
                                 nextMove = new Move(m.getIndex() + s.getIndex(), m.getWidth());
 
+                        if(path != null)
+                            path.push(nextMove, spaceIndex);
                         lastSpaceIndex = globalCastle.placeBlockUpdate(nextMove, spaceIndex);
 
                         // Time to leave current space alone and proceed to next in list
                         if(globalCastle.getSkipSpace()){
                             globalCastle.setSkipSpace(false);
-                            sum.addResult(enumerateCastleRec(lastSpaceIndex+1));
+                            sum.addResult(enumerateCastleRec(lastSpaceIndex+1, depth-1, path, cutoff));
                         } else {
-                            sum.addResult(enumerateCastleRec(lastSpaceIndex));
+                            sum.addResult(enumerateCastleRec(lastSpaceIndex, depth-1, path, cutoff));
                         }
                         globalCastle.removeBlockUpdate(nextMove, lastSpaceIndex);
+                        if(path != null)
+                            path.pop();
                     }}}
 
         if (globalCastle.canAdvance()){
+            if(path != null)
+                path.push(null, -1);
             globalCastle.advanceRow();
-            sum.addResult(enumerateCastleRec(0));
+            sum.addResult(enumerateCastleRec(0, depth-1, path, cutoff));
             globalCastle.retreatRow();
+            if(path != null)
+                path.pop();
         }
 
         return sum;
     }
 
+    /**
+     * blockNumberResults is sized for the initial globalCastle; larger castles (e.g. those handed to workers) go
+     * untracked.
+     */
+    private static boolean tracksBlockNumbers(){
+        return globalCastle.getWidth() < blockNumberResults.length
+                && globalCastle.getHeight() < blockNumberResults[0].length;
+    }
+
+    /**
+     * Cut the enumerateCastleRec search tree of a w by h castle into work units, each of which is the sequence of
+     * steps (block placements and row advances) taken to reach a node depth steps below the root.
+     *
+     * @param depth how many steps each work unit's prefix contains
+     * @param units receives the work units
+     * @precondition w > 1 and h > 1
+     * @return sum the solutions found above the cut, which no work unit will count
+     */
+    static Result splitCastle(int w, int h, int depth, List<WorkUnit> units){
+        globalCastle = new Castle(w, h);
+        prepCachedMovesRec();
+        WorkUnit prefix = new WorkUnit(w, h);
+        return enumerateCastleRec(0, depth, prefix, spaceIndex -> units.add(prefix.resumeAt(spaceIndex, units.size())));
+    }
+
+    /**
+     * Replay a work unit's prefix on a fresh globalCastle and enumerate everything below it.
+     */
+    static Result runWorkUnit(WorkUnit unit){
+        globalCastle = new Castle(unit.getWidth(), unit.getHeight());
+        prepCachedMovesRec();
+
+        for(int i = 0; i < unit.getSteps(); i++){
+            Move m = unit.getMove(i);
+            if(m == null) {
+                globalCastle.advanceRow();
+            } else {
+                globalCastle.placeBlockUpdate(m, unit.getSpaceIndex(i));
+                globalCastle.setSkipSpace(false);
+            }
+        }
+
+        return enumerateCastleRec(unit.getResumeIndex());
+    }
+
 
     /**
      * IN PROGRESS: wrapper for the memoiseCastle function
      */
     private static Result memoiseCastleWrapper(int w, int h){
         // we can calculate this kind of castle by formula
-        if(w == 1)
-            return new Result((h + 1) % 2, h % 2);
+        if(isPredetermined(w, h))
+            return predetermineCastle(w, h);
         // set the globals
 
         // create the castle - add check
@@ -296,6 +481,9 @@ public class fivehundredtwo {
  * A robust interface for generating and manipulating Castles.
  */
 class Castle{
+    private static final char BLOCK_CHAR = '█';
+    private static final byte[] BLOCK = String.valueOf(BLOCK_CHAR).getBytes(StandardCharsets.UTF_8);
+
     private int height, width;
     private int current; // the current row index (base of castle at height-1, top at 0)
     private int lastID; // the ID of the last block placed
@@ -562,28 +750,13 @@ class Castle{
      * @param showSpaces toggles whether the current row's spaces are displayed underneath the castle.
      */
     public void display(boolean showSpaces){
-        // Each row
-        for(int i = 0; i < this.height; i++) {
-            // Each col
-            for(int j = 0; j < width; j++){
-                if(this.blocks[i][j])
-                    System.out.print("█");
-                else
-                    System.out.print(" ");
-            }
-            if(this.current == i)
-                System.out.print("c");
-            System.out.println();
-        }
+        StringBuilder out = new StringBuilder(this.height * (this.width + 2) + this.width);
+        this.render(out, null, true);
 
         // Show which columns are invalid
-        for(Boolean bool : this.unavailableColumn){
-            if(bool)
-                System.out.print("X");
-            else
-                System.out.print(" ");
-        }
-        System.out.println();
+        for(boolean bool : this.unavailableColumn)
+            out.append(bool ? 'X' : ' ');
+        System.out.println(out);
 
         if(showSpaces)
             this.displaySpaces();
@@ -592,23 +765,64 @@ class Castle{
 
     // Displays the castle with the proposed move displayed as 'X'
     public void displayMove(Move m){
-        int col = m.getIndex(), upper = col + m.getWidth();
+        StringBuilder out = new StringBuilder(this.height * (this.width + 2));
+        this.render(out, m, false);
+        System.out.println(out);
+    }
+
+    /**
+     * Draw the castle for the console, one line per row; System.out does the encoding.
+     */
+    private void render(StringBuilder out, Move proposed, boolean markCurrent){
+        int col = proposed == null ? 0 : proposed.getIndex(), upper = proposed == null ? 0 : col + proposed.getWidth();
+        for(int i = 0; i < this.height; i++) {
+            for(int j = 0; j < this.width; j++)
+                out.append(this.cell(i, j, col, upper));
+            if(markCurrent && this.current == i)
+                out.append('c');
+            out.append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Draw the castle as UTF-8 text, one '\n'-terminated line per row, without allocating.
+     *
+     * @param proposed a Move to draw as 'X' in the current row, or null
+     * @param markCurrent whether to mark the current row with a trailing 'c'
+     * @precondition out has at least renderedBytes() (plus height, if markCurrent) bytes remaining
+     */
+    void render(ByteBuffer out, Move proposed, boolean markCurrent){
+        int col = proposed == null ? 0 : proposed.getIndex(), upper = proposed == null ? 0 : col + proposed.getWidth();
         // Each row
         for(int i = 0; i < this.height; i++) {
             // Each col
             for(int j = 0; j < this.width; j++){
-                if(this.current == i && j < upper && j >= col)
-                    System.out.print("X");
-                else {
-                    if(this.blocks[i][j])
-                        System.out.print("█");
-                    else
-                        System.out.print(" ");
-                }
+                char c = this.cell(i, j, col, upper);
+                if(c == BLOCK_CHAR)
+                    out.put(BLOCK);
+                else
+                    out.put((byte) c);
             }
-            System.out.println();
+            if(markCurrent && this.current == i)
+                out.put((byte) 'c');
+            out.put((byte) '\n');
         }
-        System.out.println();
+    }
+
+    /**
+     * @return 'X' where the proposed move in columns col up to upper would go, BLOCK_CHAR for a block, ' ' otherwise
+     */
+    private char cell(int i, int j, int col, int upper){
+        if(this.current == i && j < upper && j >= col)
+            return 'X';
+        return this.blocks[i][j] ? BLOCK_CHAR : ' ';
+    }
+
+    /**
+     * @return an upper bound on the bytes render writes, not counting the current row's marker
+     */
+    int renderedBytes(){
+        return this.height * (this.width * BLOCK.length + 1);
     }
 
     private void displaySpaces(){
@@ -617,7 +831,9 @@ class Castle{
     }
 }
 
-class Move {
+class Move implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private int index;
     private int width;
 
@@ -676,7 +892,9 @@ class Space {
  * Allows manipulation of the twin data points required by memoisation. Scales infinitely past the limits of the
  * Integer type.
  */
-class Result{
+class Result implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private BigInteger evenSolutions;
     private BigInteger oddSolutions;
 
@@ -715,11 +933,35 @@ class Result{
         return new Result(this.oddSolutions, this.evenSolutions);
     }
 
+    /**
+     * Combine the solutions of two independent parts of a castle: the total is even when both parts are even or
+     * both are odd.
+     */
+    Result multiply(Result other){
+        return new Result(
+                this.evenSolutions.multiply(other.evenSolutions).add(this.oddSolutions.multiply(other.oddSolutions)),
+                this.evenSolutions.multiply(other.oddSolutions).add(this.oddSolutions.multiply(other.evenSolutions)));
+    }
+
+    Result subtract(Result other){
+        return new Result(this.evenSolutions.subtract(other.evenSolutions),
+                this.oddSolutions.subtract(other.oddSolutions));
+    }
+
+    BigInteger getEvenSolutions() { return this.evenSolutions; }
+
+    BigInteger getOddSolutions() { return this.oddSolutions; }
+
     /**
      * Display in the format of {even, odd}
      */
     void display(){
-        System.out.print("{" + evenSolutions.toString() + ", " + oddSolutions.toString() + "}");
+        System.out.print(this);
+    }
+
+    @Override
+    public String toString(){
+        return "{" + evenSolutions.toString() + ", " + oddSolutions.toString() + "}";
     }
 }
 
@@ -767,3 +1009,1145 @@ class ResultTRIE{
             return this.children.get(list.remove(0)).getResult(list); // is this destructive of original list?
     }
 }
+
+/**
+ * A serialisable node of the enumerateCastleRec search tree: the steps taken from a fresh Castle to reach it, plus
+ * the space index at which enumeration resumes. A null Move stands for a row advance.
+ */
+class WorkUnit implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int width, height;
+    private int id;
+    private int resumeIndex;
+    private ArrayList<Move> moves;
+    private ArrayList<Integer> spaceIndices; // the space each Move was placed in
+
+    WorkUnit(int w, int h){
+        this.width = w;
+        this.height = h;
+        this.moves = new ArrayList<>();
+        this.spaceIndices = new ArrayList<>();
+    }
+
+    void push(Move m, int spaceIndex){
+        this.moves.add(m);
+        this.spaceIndices.add(spaceIndex);
+    }
+
+    void pop(){
+        this.moves.remove(this.moves.size() - 1);
+        this.spaceIndices.remove(this.spaceIndices.size() - 1);
+    }
+
+    /**
+     * Copy the current prefix into a standalone unit.
+     */
+    WorkUnit resumeAt(int spaceIndex, int id){
+        WorkUnit unit = new WorkUnit(this.width, this.height);
+        unit.moves.addAll(this.moves);
+        unit.spaceIndices.addAll(this.spaceIndices);
+        unit.resumeIndex = spaceIndex;
+        unit.id = id;
+        return unit;
+    }
+
+    int getWidth() { return this.width; }
+
+    int getHeight() { return this.height; }
+
+    int getId() { return this.id; }
+
+    int getResumeIndex() { return this.resumeIndex; }
+
+    int getSteps() { return this.moves.size(); }
+
+    Move getMove(int step) { return this.moves.get(step); }
+
+    int getSpaceIndex(int step) { return this.spaceIndices.get(step); }
+}
+
+/**
+ * Spreads the enumeration of a single castle over several worker JVMs on the same host.
+ *
+ * The coordinator and its workers share a spool directory:
+ *   pending/unit-N          work units waiting to be claimed
+ *   claimed/unit-N.wI       unit N, claimed by worker I (claiming is an atomic rename out of pending/)
+ *   done/unit-N             the Result for unit N
+ *
+ * Workers exit once pending/ is empty. If a worker dies, the units it had claimed are moved back into pending/ and a
+ * replacement is started; a unit is given up on after MAX_ATTEMPTS. Workers that die before finishing anything (e.g.
+ * because the JVM can't start) are given up on after MAX_ATTEMPTS per worker slot. Either way, the remaining workers
+ * are killed and the spool is removed. Scaling out only requires a larger worker count.
+ */
+class WorkCoordinator {
+    private static final int UNITS_PER_WORKER = 8; // enough that a slow unit doesn't leave the others idle
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long POLL_MILLIS = 20;
+
+    private Path pending, claimed, done;
+    private int workerCount;
+    private int nextWorkerId;
+
+    WorkCoordinator(Path spool, int workers){
+        this.pending = spool.resolve("pending");
+        this.claimed = spool.resolve("claimed");
+        this.done = spool.resolve("done");
+        this.workerCount = workers;
+    }
+
+    /**
+     * Enumerate a w by h castle with the configured number of workers.
+     *
+     * @return the merged even and odd solutions
+     */
+    Result run(int w, int h) throws IOException, InterruptedException {
+        // we can calculate this kind of castle by formula
+        if(fivehundredtwo.isPredetermined(w, h))
+            return fivehundredtwo.predetermineCastle(w, h);
+
+        // Deepen the cut until there is enough work to go around
+        List<WorkUnit> units = new ArrayList<>();
+        Result sum = new Result();
+        int lastCount = -1;
+        for(int depth = 1; units.size() < UNITS_PER_WORKER * this.workerCount && units.size() > lastCount; depth++){
+            lastCount = units.size();
+            units.clear();
+            sum = fivehundredtwo.splitCastle(w, h, depth, units);
+        }
+
+        Map<Integer, Process> workers = new HashMap<>();
+        try {
+            Files.createDirectories(this.pending);
+            Files.createDirectories(this.claimed);
+            Files.createDirectories(this.done);
+            for(WorkUnit unit : units)
+                writeAtomically(this.pending.resolve(unitName(unit.getId())), unit);
+
+            Map<String, Integer> attempts = new HashMap<>();
+            for(int i = 0; i < Math.min(this.workerCount, units.size()); i++)
+                startWorker(workers);
+
+            int finished = 0, failuresSinceProgress = 0;
+            while(finished < units.size()){
+                Thread.sleep(POLL_MILLIS);
+
+                int nowFinished = count(this.done);
+                if(nowFinished > finished)
+                    failuresSinceProgress = 0;
+                finished = nowFinished;
+
+                for(Integer id : new ArrayList<>(workers.keySet())){
+                    Process p = workers.get(id);
+                    if(p.isAlive())
+                        continue;
+                    workers.remove(id);
+                    if(p.exitValue() != 0){
+                        if(++failuresSinceProgress >= MAX_ATTEMPTS * this.workerCount)
+                            throw new IllegalStateException(failuresSinceProgress
+                                    + " workers failed without any unit finishing; last exit code " + p.exitValue());
+                        requeue(id, attempts);
+                    }
+                }
+
+                // Replace dead workers while work remains
+                if(count(this.pending) > 0)
+                    while(workers.size() < this.workerCount)
+                        startWorker(workers);
+            }
+
+            for(WorkUnit unit : units)
+                sum.addResult((Result) read(this.done.resolve(unitName(unit.getId()))));
+        } finally {
+            for(Process p : workers.values())
+                p.destroyForcibly();
+            for(Process p : workers.values())
+                p.waitFor();
+            deleteSpool();
+        }
+
+        return sum;
+    }
+
+    /**
+     * Remove the spool, including any temporary files left behind by dead workers.
+     */
+    private void deleteSpool() throws IOException {
+        List<Path> spoolFiles = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(this.pending.getParent())) {
+            walk.forEach(spoolFiles::add);
+        }
+        for(int i = spoolFiles.size() - 1; i >= 0; i--)
+            Files.delete(spoolFiles.get(i));
+    }
+
+    /**
+     * Worker loop: claim, enumerate and report units until none are pending.
+     */
+    static void work(Path spool, int workerId) throws IOException {
+        WorkCoordinator spoolDirs = new WorkCoordinator(spool, 0);
+        String suffix = ".w" + workerId;
+
+        boolean claimedAny = true;
+        while(claimedAny){
+            claimedAny = false;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(spoolDirs.pending)) {
+                for(Path file : files){
+                    Path claim = spoolDirs.claimed.resolve(file.getFileName() + suffix);
+                    try {
+                        Files.move(file, claim, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (NoSuchFileException e) {
+                        continue; // another worker got there first
+                    }
+                    claimedAny = true;
+
+                    WorkUnit unit = (WorkUnit) read(claim);
+                    writeAtomically(spoolDirs.done.resolve(file.getFileName()), fivehundredtwo.runWorkUnit(unit));
+                    Files.delete(claim);
+                }
+            }
+        }
+    }
+
+    private void startWorker(Map<Integer, Process> workers) throws IOException {
+        int id = this.nextWorkerId++;
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        // Workers get the same JVM options (-Xss, -Xmx, castle.* properties) as this JVM
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("fivehundredtwo");
+        command.add("--worker");
+        command.add(this.pending.getParent().toString());
+        command.add(Integer.toString(id));
+        Process p = new ProcessBuilder(command).inheritIO().start();
+        workers.put(id, p);
+    }
+
+    /**
+     * Move units claimed by a dead worker back into pending/.
+     */
+    private void requeue(int workerId, Map<String, Integer> attempts) throws IOException {
+        String suffix = ".w" + workerId;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.claimed, "*" + suffix)) {
+            for(Path file : files){
+                String name = file.getFileName().toString();
+                name = name.substring(0, name.length() - suffix.length());
+                int tries = attempts.merge(name, 1, Integer::sum);
+                if(tries >= MAX_ATTEMPTS)
+                    throw new IllegalStateException(name + " failed on " + tries + " workers");
+                Files.move(file, this.pending.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    private static String unitName(int id){
+        return "unit-" + id;
+    }
+
+    private static int count(Path dir) throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for(Path ignored : files)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Write to a temporary file in the spool root first so that readers never see a partial object.
+     */
+    private static void writeAtomically(Path target, Serializable o) throws IOException {
+        Path dir = target.getParent();
+        Path tmp = dir.resolveSibling(dir.getFileName() + "-" + target.getFileName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeObject(o);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Object read(Path file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
+
+/**
+ * A long-lived query server, so that repeated queries don't pay for JVM startup and cold caches.
+ *
+ * Protocol (one query per line, one answer per line, over a loopback socket):
+ *   w h            ->  F(w, h)
+ *   w h modulus    ->  F(w, h) mod modulus
+ * Malformed queries are answered with a line starting "error:".
+ *
+ * Answers are cached per (w, h) with both parities, so queries that differ only in modulus share an entry. The cache
+ * evicts its least recently used entry once it holds cacheSize castles. Concurrent queries for the same uncached
+ * castle are coalesced onto a single calculation. Since calculations share globalCastle, they run one at a time.
+ */
+class CastleServer {
+    static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private final Map<Long, Result> cache;
+    // guarded by cache, so that a key is never in neither map while it is being calculated
+    private final Map<Long, CompletableFuture<Result>> inFlight = new HashMap<>();
+    private final ExecutorService calculator = Executors.newSingleThreadExecutor();
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+
+    CastleServer(int cacheSize){
+        this.cache = new LinkedHashMap<Long, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Result> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Accept connections until the process is killed.
+     */
+    void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Serving castle queries on " + server.getLocalSocketAddress());
+            while(true){
+                Socket client = server.accept();
+                this.connections.execute(() -> handle(client));
+            }
+        }
+    }
+
+    private void handle(Socket client){
+        try (Socket c = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8),
+                     true)) {
+            String line;
+            while((line = in.readLine()) != null)
+                out.println(answer(line));
+        } catch (IOException e) {
+            // the client went away; nothing to clean up
+        }
+    }
+
+    String answer(String query){
+        String[] parts = query.trim().split("\\s+");
+        if(parts.length != 2 && parts.length != 3)
+            return "error: expected \"w h [modulus]\"";
+        try {
+            // validate everything before tying up the calculator
+            int w = Integer.parseInt(parts[0]), h = Integer.parseInt(parts[1]);
+            if(w < 1 || h < 1)
+                return "error: dimensions must be positive";
+            BigInteger modulus = parts.length == 3 ? new BigInteger(parts[2]) : null;
+            if(modulus != null && modulus.signum() <= 0)
+                return "error: modulus must be positive";
+
+            BigInteger f = query(w, h).getEvenSolutions();
+            return (modulus == null ? f : f.mod(modulus)).toString();
+        } catch (NumberFormatException e) {
+            return "error: " + e.getMessage();
+        } catch (CompletionException e) {
+            return "error: calculation failed with " + e.getCause();
+        }
+    }
+
+    /**
+     * @return the even and odd solutions for a w by h castle, from the cache where possible
+     */
+    Result query(int w, int h){
+        long key = ((long) w << 32) | h;
+        CompletableFuture<Result> pending, created = null;
+        synchronized(this.cache){
+            Result cached = this.cache.get(key);
+            if(cached != null)
+                return cached;
+            pending = this.inFlight.get(key);
+            if(pending == null){
+                pending = created = new CompletableFuture<>();
+                this.inFlight.put(key, created);
+            }
+        }
+
+        if(created != null){
+            CompletableFuture<Result> calculation = created;
+            this.calculator.execute(() -> {
+                try {
+                    Result result = fivehundredtwo.calculateCastle(w, h);
+                    synchronized(this.cache){
+                        this.cache.put(key, result);
+                        this.inFlight.remove(key);
+                    }
+                    calculation.complete(result);
+                } catch (Throwable e) {
+                    // whatever went wrong (including OutOfMemoryError), waiting queries must not hang
+                    synchronized(this.cache){
+                        this.inFlight.remove(key);
+                    }
+                    calculation.completeExceptionally(e);
+                }
+            });
+        }
+        return pending.join();
+    }
+}
+
+/**
+ * The ways calculateCastle can count a castle.
+ */
+enum Engine {
+    CLOSED_FORM, // w == 1 or h == 1
+    INCREMENTAL, // SubCastleTable, extended from the castles already tabulated
+    DFS,         // enumerateCastleRec in this JVM
+    DISTRIBUTED  // enumerateCastleRec split over worker JVMs by WorkCoordinator
+}
+
+/**
+ * Picks the cheapest feasible Engine for a castle size, so that callers never need to choose.
+ *
+ * Enumeration time is proportional to the number of castles visited. For a fixed width, that number grows like a
+ * polynomial of degree w - 1 in h; fitting the 2 <= w <= 6, h <= 13 results gives roughly
+ * C(h + w - 2, w - 1) * 2 * 3.5^(w - 2). The constant factor is measured once per JVM by timing a small enumeration;
+ * since larger castles amortise more of their work per castle, this overestimates them, but it does so for every
+ * enumerating engine alike. Before calibrating, the enumerating engines are bounded below by MIN_SECONDS_PER_CASTLE
+ * and skipped if that already loses to the table.
+ *
+ * The table costs about w additions and multiplications for each of the w * h cells it doesn't have yet (all of
+ * them, if it has to be dropped to stay within its memory budget).
+ *
+ * Every engine is exact, so a requested modulus is applied afterwards and doesn't influence the choice.
+ * Run with -Dcastle.explain=true to log each decision to stderr, or -Dcastle.engine=INCREMENTAL|DFS|DISTRIBUTED to
+ * skip the comparison and use that engine wherever it is feasible (castles one unit wide or tall still use the
+ * closed form).
+ */
+class EnginePlanner {
+    private static final boolean EXPLAIN = Boolean.getBoolean("castle.explain");
+    private static final int CALIBRATION_WIDTH = 5, CALIBRATION_HEIGHT = 8;
+    private static final double MIN_SECONDS_PER_CASTLE = 1e-7;
+    private static final double SECONDS_PER_TABLE_OP = 1e-6; // BigInteger multiply-add, measured up to 100 by 100
+    private static final double WORKER_STARTUP_SECONDS = 0.5; // JVM launch, prefix replay and spool I/O
+    private static final long BYTES_PER_CELL = 256; // castle grid, space lists and one stack frame per block
+    private static final long WORKER_BYTES = 64L << 20;
+    private static final double MAX_SECONDS = 365 * 24 * 3600;
+    private static final long BYTES_PER_FRAME = 384; // enumerateCastleRec, measured at ~335 while interpreted
+    private static final long DEFAULT_STACK_BYTES = 1L << 20; // HotSpot's default -Xss on 64-bit platforms
+
+    private static int workers = 1;
+    private static boolean enumerationRequired = false;
+    private static double secondsPerCastle = -1; // not yet calibrated
+
+    static void setWorkers(int n){
+        workers = n;
+    }
+
+    /**
+     * Restrict the choice to engines that visit each castle in this JVM, e.g. while castles are being exported.
+     */
+    static void setEnumerationRequired(boolean required){
+        enumerationRequired = required;
+    }
+
+    /**
+     * @precondition w > 0
+     * @precondition h > 0
+     * @return the engine with the lowest estimated time among those that fit in memory and time, or the one
+     *         named by castle.engine
+     * @throws IllegalArgumentException if no engine does, or the one named by castle.engine doesn't
+     */
+    static Engine plan(int w, int h){
+        if(fivehundredtwo.isPredetermined(w, h)){
+            explain(w, h, Engine.CLOSED_FORM, "closed form");
+            return Engine.CLOSED_FORM;
+        }
+
+        String forced = System.getProperty("castle.engine");
+        if(forced != null){
+            Engine e;
+            try {
+                e = Engine.valueOf(forced);
+            } catch (IllegalArgumentException ex) {
+                throw new IllegalArgumentException("castle.engine must be one of INCREMENTAL, DFS or DISTRIBUTED");
+            }
+            String infeasible = whyInfeasible(e, w, h);
+            if(infeasible != null)
+                throw new IllegalArgumentException("castle.engine=" + e + " can't count a " + w + " by " + h
+                        + " castle: " + infeasible);
+            explain(w, h, e, "forced by castle.engine");
+            return e;
+        }
+
+        Engine best = null;
+        double bestSeconds = Double.POSITIVE_INFINITY;
+        StringBuilder why = new StringBuilder();
+        for(Engine e : new Engine[]{Engine.INCREMENTAL, Engine.DFS, Engine.DISTRIBUTED}){
+            if(why.length() > 0)
+                why.append("; ");
+            String infeasible = whyInfeasible(e, w, h);
+            if(infeasible != null){
+                why.append(e).append(" infeasible: ").append(infeasible);
+                continue;
+            }
+            if(secondsPerCastle < 0 && e != Engine.INCREMENTAL){
+                double atLeast = estimateCastles(w, h) * MIN_SECONDS_PER_CASTLE;
+                if(best != null && atLeast >= bestSeconds){
+                    why.append(String.format("%s at least ~%.3g s", e, atLeast));
+                    continue;
+                }
+            }
+            double seconds = estimateSeconds(e, w, h);
+            if(seconds > MAX_SECONDS){
+                why.append(String.format("%s infeasible: ~%.3g s", e, seconds));
+                continue;
+            }
+            why.append(String.format("%s ~%.3g s, ~%d KB", e, seconds, estimateBytes(e, w, h) >> 10));
+            if(seconds < bestSeconds){
+                best = e;
+                bestSeconds = seconds;
+            }
+        }
+
+        if(best == null)
+            throw new IllegalArgumentException("no engine can count a " + w + " by " + h + " castle [" + why + "]");
+        explain(w, h, best, why.toString());
+        return best;
+    }
+
+    /**
+     * Run the DISTRIBUTED engine with the configured number of workers.
+     */
+    static Result distribute(int w, int h){
+        try {
+            return new WorkCoordinator(Files.createTempDirectory("castle-spool"), workers).run(w, h);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String whyInfeasible(Engine e, int w, int h){
+        if(e == Engine.CLOSED_FORM)
+            return "only castles one unit wide or tall have a closed form";
+        if(enumerationRequired && e != Engine.DFS)
+            return "castles must be enumerated in this JVM";
+        if(e == Engine.DISTRIBUTED && workers < 2)
+            return "no workers configured";
+        if(e == Engine.INCREMENTAL && !SubCastleTable.fits(w, h))
+            return "exceeds the table's memory budget";
+        if(e != Engine.INCREMENTAL){
+            // workers are started with this JVM's options, so their stacks are no deeper
+            if(estimateDepth(w, h) * BYTES_PER_FRAME > stackBytes())
+                return "recursion exceeds the thread stack (-Xss)";
+            double perCastle = secondsPerCastle < 0 ? MIN_SECONDS_PER_CASTLE : secondsPerCastle;
+            int parallel = e == Engine.DISTRIBUTED ? Math.min(workers, Runtime.getRuntime().availableProcessors()) : 1;
+            double atLeast = estimateCastles(w, h) * perCastle / parallel;
+            if(atLeast > MAX_SECONDS)
+                return String.format("would take at least ~%.3g s", atLeast);
+        }
+        if(estimateBytes(e, w, h) > Runtime.getRuntime().maxMemory())
+            return "exceeds heap";
+        return null;
+    }
+
+    private static double estimateSeconds(Engine e, int w, int h){
+        if(e == Engine.INCREMENTAL)
+            return ((double) w * h - SubCastleTable.reusableCells(w, h)) * w * SECONDS_PER_TABLE_OP;
+
+        if(secondsPerCastle < 0)
+            calibrate();
+        double dfs = estimateCastles(w, h) * secondsPerCastle;
+        if(e != Engine.DISTRIBUTED)
+            return dfs;
+
+        // workers beyond the number of cores only take turns, and their JVMs compete to start up
+        int cores = Runtime.getRuntime().availableProcessors(), parallel = Math.min(workers, cores);
+        double startup = WORKER_STARTUP_SECONDS * ((workers + cores - 1) / cores);
+        return startup + dfs / parallel;
+    }
+
+    private static long estimateBytes(Engine e, int w, int h){
+        if(e == Engine.INCREMENTAL)
+            return SubCastleTable.bytesAfter(w, h);
+        // workers have heaps of their own, so only the coordinator's share counts against ours
+        return e == Engine.DISTRIBUTED ? WORKER_BYTES : BYTES_PER_CELL * w * h;
+    }
+
+    /**
+     * @return how deep enumerateCastleRec can recurse: one step per block, of which each row holds at most
+     *         (w + 1) / 2, and one per row advance
+     */
+    private static long estimateDepth(int w, int h){
+        return (long) h * ((w + 1) / 2 + 1);
+    }
+
+    /**
+     * @return the stack size given by -Xss or -XX:ThreadStackSize, or the default
+     */
+    private static long stackBytes(){
+        long bytes = DEFAULT_STACK_BYTES;
+        for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()){
+            try {
+                if(arg.startsWith("-Xss"))
+                    bytes = parseSize(arg.substring("-Xss".length()), 1);
+                else if(arg.startsWith("-XX:ThreadStackSize="))
+                    bytes = parseSize(arg.substring("-XX:ThreadStackSize=".length()), 1 << 10);
+            } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                // the JVM accepted it, so keep the default rather than fail
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param unit the multiplier for a size without a k, m or g suffix
+     */
+    private static long parseSize(String size, long unit){
+        char suffix = Character.toLowerCase(size.charAt(size.length() - 1));
+        int shift = suffix == 'k' ? 10 : suffix == 'm' ? 20 : suffix == 'g' ? 30 : -1;
+        if(shift < 0)
+            return Long.parseLong(size) * unit;
+        return Long.parseLong(size.substring(0, size.length() - 1)) << shift;
+    }
+
+    private static double estimateCastles(int w, int h){
+        double combinations = 1;
+        for(int i = 1; i < w; i++)
+            combinations = combinations * (h - 1 + i) / i;
+        return combinations * 2 * Math.pow(3.5, w - 2);
+    }
+
+    /**
+     * Time a small enumeration; the first run only warms up the JIT.
+     */
+    private static void calibrate(){
+        long elapsed = 0;
+        for(int run = 0; run < 2; run++)
+            elapsed = fivehundredtwo.timeEnumeration(CALIBRATION_WIDTH, CALIBRATION_HEIGHT);
+        secondsPerCastle = elapsed / 1e9 / estimateCastles(CALIBRATION_WIDTH, CALIBRATION_HEIGHT);
+    }
+
+    private static void explain(int w, int h, Engine chosen, String why){
+        if(EXPLAIN)
+            System.err.println("F(" + w + ", " + h + "): " + chosen + " [" + why + "]");
+    }
+}
+
+/**
+ * Counts castles from the counts of narrower and shorter ones, extending its tables one column or row at a time so
+ * that a castle only costs the cells that haven't been tabulated yet.
+ *
+ * Each block in the row above the base is separated from its neighbours by a gap, so no block further up can rest
+ * on two of them: each is the base of an independent sub-castle. Let G(w, k) be the even and odd castles w wide and
+ * at most k tall (counting the base), and A(j, n) the ways of filling a row segment n wide with sub-castles at most
+ * j tall (the empty row being a single even solution). Then
+ *
+ *   A(j, n) = A(j, n-1) + sum over 1 <= b <= n of G(b, j) * A(j, n-b-1)     [A(j, -1) := A(j, 0)]
+ *   G(w, k) = A(k-1, w), flipped to account for the base block
+ *
+ * and the castles exactly h tall are G(w, h) - G(w, h-1). Example (G(2, 1) = G(1, 1) = {0, 1}):
+ *   A(1, 1) = {1, 0} + {0, 1}                   = {1, 1}
+ *   A(1, 2) = {1, 1} + {0, 1}*{1, 0} + {0, 1}   = {1, 3}
+ *   G(2, 2) = {3, 1}, so F(2, 2) = {3, 1} - {0, 1} = {3, 0}
+ *
+ * A castle w by h costs O(w^2 h) additions and multiplications, most of which are shared with smaller castles.
+ *
+ * The tables live as long as the JVM, so they are kept within MEMORY_BUDGET: a castle that would take them past it
+ * drops them and starts again from scratch. Each cell holds two Results: G(n, k) and A(k-1, n), both of about
+ * n log2(k + 1) bits. What an extension will add is extrapolated from the cells already tabulated.
+ */
+class SubCastleTable {
+    static final long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+    private static final int RESULT_OVERHEAD = 96; // Result and BigInteger headers, plus the list slot
+    private static final double DEFAULT_BITS_SCALE = 1.0; // G(n, k) has ~0.92 to 1.0 n log2(k + 1) bits up to 200 by 200
+
+    // castlesBelow.get(k).get(w) = G(w, k); arrangements.get(j).get(n) = A(j, n)
+    private static List<ArrayList<Result>> castlesBelow = new ArrayList<>();
+    private static List<ArrayList<Result>> arrangements = new ArrayList<>();
+    private static long bytes; // approximate size of both tables
+
+    /**
+     * @precondition w > 0
+     * @precondition h > 0
+     * @return the even and odd castles exactly w by h
+     */
+    static Result calculate(int w, int h){
+        if(!reuses(w, h)){
+            castlesBelow.clear();
+            arrangements.clear();
+            bytes = 0;
+        }
+        extend(w, h);
+        return castlesBelow.get(h).get(w).subtract(castlesBelow.get(h - 1).get(w));
+    }
+
+    /**
+     * @return how many of the (width, height) cells up to w by h are already tabulated
+     */
+    static long tabulatedCells(int w, int h){
+        long cells = 0;
+        for(int k = 1; k <= h && k < castlesBelow.size(); k++)
+            cells += Math.min(castlesBelow.get(k).size() - 1, w);
+        return cells;
+    }
+
+    /**
+     * @return whether the tables can hold a w by h castle at all
+     */
+    static boolean fits(int w, int h){
+        return bytesToAdd(w, h, false) <= MEMORY_BUDGET;
+    }
+
+    /**
+     * @return how many cells calculate(w, h) will take from the tables rather than compute
+     */
+    static long reusableCells(int w, int h){
+        return reuses(w, h) ? tabulatedCells(w, h) : 0;
+    }
+
+    /**
+     * @return the estimated size of the tables once calculate(w, h) returns
+     */
+    static long bytesAfter(int w, int h){
+        return reuses(w, h) ? bytes + bytesToAdd(w, h, true) : bytesToAdd(w, h, false);
+    }
+
+    private static boolean reuses(int w, int h){
+        return bytes + bytesToAdd(w, h, true) <= MEMORY_BUDGET;
+    }
+
+    /**
+     * @param reusing whether the cells already tabulated are kept, rather than the tables starting from scratch
+     */
+    private static long bytesToAdd(int w, int h, boolean reusing){
+        double bitsScale = reusing ? bitsScale() : DEFAULT_BITS_SCALE, total = 0;
+        for(int k = 1; k <= h; k++){
+            long from = reusing && k < castlesBelow.size() ? Math.max(castlesBelow.get(k).size() - 1, 0) : 0;
+            if(from >= w)
+                continue;
+            // sum of n over the new cells from + 1 <= n <= w, each holding a G and an A of about bitsPerColumn * n
+            double widths = ((double) w * (w + 1) - (double) from * (from + 1)) / 2,
+                    bitsPerColumn = bitsScale * log2(k + 1);
+            total += 2 * (2 * bitsPerColumn * widths / 8 + (w - from) * RESULT_OVERHEAD);
+        }
+        return (long) Math.min(Long.MAX_VALUE, total);
+    }
+
+    /**
+     * @return the largest ratio of a tabulated cell's bits to n log2(k + 1), or DEFAULT_BITS_SCALE with nothing
+     *         tabulated
+     */
+    private static double bitsScale(){
+        double scale = 0;
+        for(int k = 1; k < castlesBelow.size(); k++){
+            int n = castlesBelow.get(k).size() - 1;
+            if(n < 1)
+                continue;
+            Result r = castlesBelow.get(k).get(n);
+            int bits = Math.max(r.getEvenSolutions().bitLength(), r.getOddSolutions().bitLength());
+            scale = Math.max(scale, bits / (n * log2(k + 1)));
+        }
+        return scale > 0 ? scale : DEFAULT_BITS_SCALE;
+    }
+
+    private static double log2(double x){
+        return Math.log(x) / Math.log(2);
+    }
+
+    private static void add(ArrayList<Result> row, Result r){
+        row.add(r);
+        bytes += (r.getEvenSolutions().bitLength() + r.getOddSolutions().bitLength()) / 8 + RESULT_OVERHEAD;
+    }
+
+    /**
+     * Fill in G(n, k) for every n <= w, k <= h not yet tabulated, row by row so that each row only depends on the
+     * one below it. Rows may end up with different widths; each is at least as wide as every row above it.
+     */
+    private static void extend(int w, int h){
+        if(castlesBelow.isEmpty()){
+            // nothing fits in a castle 0 tall, and the only arrangement of sub-castles 0 tall is the empty one
+            castlesBelow.add(new ArrayList<>());
+            arrangements.add(new ArrayList<>());
+            arrangements.get(0).add(new Result(1, 0));
+        }
+
+        for(int k = 0; k <= h; k++){
+            if(k == castlesBelow.size()){
+                castlesBelow.add(new ArrayList<>());
+                arrangements.add(new ArrayList<>());
+                arrangements.get(k).add(new Result(1, 0));
+            }
+            ArrayList<Result> below = castlesBelow.get(k);
+            if(below.isEmpty())
+                below.add(null); // no castle is 0 wide
+
+            for(int n = below.size(); n <= w; n++){
+                if(k == 0) {
+                    add(below, new Result());
+                    continue;
+                }
+                // sub-castles in the row above the base are at most k-1 tall
+                ArrayList<Result> rowAbove = arrangements.get(k - 1);
+                extendArrangements(k - 1, n);
+                add(below, rowAbove.get(n).flip());
+            }
+        }
+    }
+
+    /**
+     * Fill in A(j, m) for every m <= n; G(b, j) must be known for b <= n.
+     */
+    private static void extendArrangements(int j, int n){
+        ArrayList<Result> row = arrangements.get(j), castles = castlesBelow.get(j);
+        for(int m = row.size(); m <= n; m++){
+            Result sum = new Result();
+            sum.addResult(row.get(m - 1)); // leave the first column empty
+            for(int b = 1; b <= m; b++)    // or start a sub-castle b wide there, followed by a gap
+                sum.addResult(castles.get(b).multiply(row.get(Math.max(m - b - 1, 0))));
+            add(row, sum);
+        }
+    }
+}
+
+/**
+ * Exports sampled castles and the result tables without slowing enumeration down to the speed of the disk.
+ *
+ * Sampled castles are rendered straight into one of a few reusable ByteBuffers; a background thread writes full
+ * buffers to castles.txt through a FileChannel and hands them back. If the writer falls behind, offer blocks until a
+ * buffer is free. Castles too large to fit in an empty buffer are skipped.
+ *
+ * Configured through system properties:
+ *   castle.export=directory        enables exporting into directory; results are always exported
+ *   castle.sample=every:n          also export every nth castle found
+ *   castle.sample=reservoir:k      also export k castles chosen uniformly at random per castle size and block count
+ *   castle.histograms=true         also export blockNumberResults
+ *   castle.format=csv|binary       format of results and histograms (default csv)
+ *
+ * Only sampling and histograms need castles to be enumerated one by one (see needsEnumeration); results alone come
+ * from whichever engine the planner picks.
+ *
+ * results.csv holds "width,height,even,odd" per castleResults entry, and histograms.csv "width,height,blocks,castles"
+ * per nonzero blockNumberResults entry. The binary files hold the same records as big-endian ints, except that even
+ * and odd are each written as a length-prefixed two's complement byte array.
+ */
+class CastleExporter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16, BUFFER_COUNT = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // tells the writer to stop
+    private static final byte[] BLOCKS_SUFFIX = " blocks\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path directory;
+    private final boolean binary;
+    private final boolean histograms;
+    private final long every;         // 0 when reservoir sampling or not sampling
+    private final int reservoirSize;  // 0 when sampling every nth castle or not sampling
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT),
+            full = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final FileChannel channel; // null when not sampling
+    private final Thread writer;
+    private volatile IOException writeError;
+
+    private ByteBuffer buffer;
+    private long untilSample; // castles left before the next every-nth sample
+    // reservoirs.get(i)[blocks] holds the samples for the i-th castle size visited
+    private final List<Reservoir[]> reservoirs = new ArrayList<>();
+    private Castle reservoirCastle; // the castle whose size the last reservoirs belong to
+
+    private static class Reservoir {
+        long seen;
+        long next;     // the index of the next castle to keep once the reservoir is full
+        double weight; // Algorithm L's running threshold
+        ByteBuffer[] samples;
+    }
+
+    CastleExporter(Path directory, long every, int reservoirSize, boolean histograms, boolean binary)
+            throws IOException {
+        this.directory = directory;
+        this.every = every;
+        this.untilSample = every;
+        this.reservoirSize = reservoirSize;
+        this.histograms = histograms;
+        this.binary = binary;
+
+        Files.createDirectories(directory);
+        if(every == 0 && reservoirSize == 0){
+            this.channel = null;
+            this.writer = null;
+            return;
+        }
+        this.channel = FileChannel.open(directory.resolve("castles.txt"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        for(int i = 0; i < BUFFER_COUNT; i++)
+            this.free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        this.buffer = this.free.remove();
+
+        this.writer = new Thread(this::drain, "castle-exporter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return an exporter configured by the castle.* system properties, or null if castle.export isn't set
+     */
+    static CastleExporter fromSystemProperties() throws IOException {
+        String directory = System.getProperty("castle.export");
+        if(directory == null)
+            return null;
+
+        long every = 0;
+        int reservoirSize = 0;
+        String sampling = System.getProperty("castle.sample");
+        if(sampling != null){
+            String[] sample = sampling.split(":");
+            int n;
+            try {
+                n = sample.length == 2 ? Integer.parseInt(sample[1]) : 0;
+            } catch (NumberFormatException e) {
+                n = 0;
+            }
+            if(n < 1 || !(sample[0].equals("every") || sample[0].equals("reservoir")))
+                throw new IllegalArgumentException("castle.sample must be every:n or reservoir:k with n, k > 0");
+            if(sample[0].equals("every"))
+                every = n;
+            else
+                reservoirSize = n;
+        }
+
+        String format = System.getProperty("castle.format", "csv");
+        if(!format.equals("csv") && !format.equals("binary"))
+            throw new IllegalArgumentException("castle.format must be csv or binary");
+
+        return new CastleExporter(Paths.get(directory), every, reservoirSize, Boolean.getBoolean("castle.histograms"),
+                format.equals("binary"));
+    }
+
+    /**
+     * @return whether castles must be enumerated one by one for this export
+     */
+    boolean needsEnumeration(){
+        return this.channel != null || this.histograms;
+    }
+
+    /**
+     * Called for every castle found; cheap unless the castle is sampled.
+     */
+    void offer(Castle c){
+        if(this.channel == null)
+            return;
+        if(this.every > 0){
+            if(--this.untilSample == 0){
+                this.untilSample = this.every;
+                ByteBuffer out = room(c);
+                if(out != null)
+                    writeSample(out, c);
+            }
+            return;
+        }
+
+        if(c != this.reservoirCastle){
+            this.reservoirCastle = c;
+            this.reservoirs.add(new Reservoir[c.getWidth() * c.getHeight() + 1]);
+        }
+        Reservoir[] bySize = this.reservoirs.get(this.reservoirs.size() - 1);
+        Reservoir r = bySize[c.getLastID()];
+        if(r == null) {
+            r = bySize[c.getLastID()] = new Reservoir();
+            r.samples = new ByteBuffer[this.reservoirSize];
+        }
+
+        /* Keep the j-th castle with probability k / j. Rather than drawing for every castle, Algorithm L (Li, 1994)
+        draws how many castles to skip, so that most castles cost a single comparison. */
+        long j = r.seen++;
+        int i;
+        if(j < this.reservoirSize){
+            i = (int) j;
+            if(j == this.reservoirSize - 1) {
+                r.weight = Math.exp(Math.log(random()) / this.reservoirSize);
+                r.next = j + skip(r.weight);
+            }
+        } else if(j == r.next){
+            i = ThreadLocalRandom.current().nextInt(this.reservoirSize);
+            r.weight *= Math.exp(Math.log(random()) / this.reservoirSize);
+            r.next = j + skip(r.weight);
+        } else {
+            return;
+        }
+
+        if(r.samples[i] == null)
+            r.samples[i] = ByteBuffer.allocate(sampleBytes(c));
+        r.samples[i].clear();
+        writeSample(r.samples[i], c);
+    }
+
+    /**
+     * Write castleResults, and blockNumberResults if histograms were asked for, in the configured format. Both are
+     * indexed [width][height].
+     */
+    void writeTables(Result[][] results, int[][][] blockNumbers) throws IOException {
+        if(this.binary){
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(this.directory.resolve("results.bin"))))) {
+                for(int w = 0; w < results.length; w++)
+                    for(int h = 0; h < results[w].length; h++)
+                        if(results[w][h] != null){
+                            out.writeInt(w);
+                            out.writeInt(h);
+                            for(BigInteger n : new BigInteger[]{results[w][h].getEvenSolutions(),
+                                    results[w][h].getOddSolutions()}){
+                                byte[] bytes = n.toByteArray();
+                                out.writeInt(bytes.length);
+                                out.write(bytes);
+                            }
+                        }
+            }
+            if(!this.histograms)
+                return;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(this.directory.resolve("histograms.bin"))))) {
+                for(int w = 0; w < blockNumbers.length; w++)
+                    for(int h = 0; h < blockNumbers[w].length; h++)
+                        for(int blocks = 0; blocks < blockNumbers[w][h].length; blocks++)
+                            if(blockNumbers[w][h][blocks] != 0){
+                                out.writeInt(w);
+                                out.writeInt(h);
+                                out.writeInt(blocks);
+                                out.writeInt(blockNumbers[w][h][blocks]);
+                            }
+            }
+        } else {
+            try (BufferedWriter out = Files.newBufferedWriter(this.directory.resolve("results.csv"))) {
+                out.write("width,height,even,odd\n");
+                for(int w = 0; w < results.length; w++)
+                    for(int h = 0; h < results[w].length; h++)
+                        if(results[w][h] != null)
+                            out.write(w + "," + h + "," + results[w][h].getEvenSolutions() + ","
+                                    + results[w][h].getOddSolutions() + "\n");
+            }
+            if(!this.histograms)
+                return;
+            try (BufferedWriter out = Files.newBufferedWriter(this.directory.resolve("histograms.csv"))) {
+                out.write("width,height,blocks,castles\n");
+                for(int w = 0; w < blockNumbers.length; w++)
+                    for(int h = 0; h < blockNumbers[w].length; h++)
+                        for(int blocks = 0; blocks < blockNumbers[w][h].length; blocks++)
+                            if(blockNumbers[w][h][blocks] != 0)
+                                out.write(w + "," + h + "," + blocks + "," + blockNumbers[w][h][blocks] + "\n");
+            }
+        }
+    }
+
+    /**
+     * Write out the reservoirs, flush the last buffer and wait for the writer to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        if(this.channel == null)
+            return;
+        for(Reservoir[] bySize : this.reservoirs)
+            for(Reservoir r : bySize)
+                if(r != null)
+                    for(int i = 0; i < Math.min(r.seen, this.reservoirSize); i++){
+                        ByteBuffer sample = r.samples[i];
+                        sample.flip();
+                        ByteBuffer out = room(sample.remaining());
+                        if(out != null)
+                            out.put(sample);
+                    }
+
+        try {
+            this.full.put(this.buffer);
+            this.full.put(END);
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while flushing castles");
+        } finally {
+            this.channel.close();
+        }
+        if(this.writeError != null)
+            throw this.writeError;
+    }
+
+    /**
+     * Header ("# w x h, n blocks"), the castle, and a blank line.
+     */
+    private static void writeSample(ByteBuffer out, Castle c){
+        out.put((byte) '#').put((byte) ' ');
+        putDecimal(out, c.getWidth());
+        out.put((byte) ' ').put((byte) 'x').put((byte) ' ');
+        putDecimal(out, c.getHeight());
+        out.put((byte) ',').put((byte) ' ');
+        putDecimal(out, c.getLastID());
+        out.put(BLOCKS_SUFFIX);
+        c.render(out, null, false);
+        out.put((byte) '\n');
+    }
+
+    private static long skip(double weight){
+        return (long) Math.floor(Math.log(random()) / Math.log(1 - weight)) + 1;
+    }
+
+    // uniform on (0, 1), so that its logarithm is finite
+    private static double random(){
+        double u;
+        do {
+            u = ThreadLocalRandom.current().nextDouble();
+        } while(u == 0);
+        return u;
+    }
+
+    private static int sampleBytes(Castle c){
+        return c.renderedBytes() + 64; // header and trailing blank line
+    }
+
+    private static void putDecimal(ByteBuffer out, int n){
+        if(n >= 10)
+            putDecimal(out, n / 10);
+        out.put((byte) ('0' + n % 10));
+    }
+
+    private ByteBuffer room(Castle c){
+        return room(sampleBytes(c));
+    }
+
+    /**
+     * @return a buffer with at least bytes remaining, or null if no buffer is that large
+     */
+    private ByteBuffer room(int bytes){
+        if(bytes > BUFFER_SIZE)
+            return null;
+        if(this.buffer.remaining() < bytes){
+            try {
+                this.full.put(this.buffer);
+                this.buffer = this.free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Writer thread: after a failed write, keep recycling buffers so that enumeration never stalls; close reports
+     * the error.
+     */
+    private void drain(){
+        try {
+            for(ByteBuffer b = this.full.take(); b != END; b = this.full.take()){
+                b.flip();
+                try {
+                    while(b.hasRemaining() && this.writeError == null)
+                        this.channel.write(b);
+                } catch (IOException e) {
+                    this.writeError = e;
+                }
+                b.clear();
+                this.free.put(b);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}